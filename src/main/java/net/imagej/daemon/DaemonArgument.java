@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2015 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import org.scijava.console.AbstractConsoleArgument;
+import org.scijava.console.ConsoleArgument;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.ui.UIService;
+
+/**
+ * Handles the {@code --daemon [port]} command line argument, which keeps the
+ * context alive and serves jobs via a {@link DaemonServer} until told to quit.
+ * <p>
+ * Arguments are processed in order, and this one blocks until the daemon
+ * quits, so {@code --headless} must come <em>before</em> {@code --daemon}. The
+ * daemon refuses to start otherwise, since scripts could then pop up input
+ * dialogs on the server. The access token is written to
+ * {@code ~/.imagej/daemon-<port>.token}, unless the {@code imagej.daemon.token}
+ * system property names another file. Since clients find the token file by
+ * port, the port must be given explicitly; port 0 (any free port) is refused.
+ * </p>
+ */
+@Plugin(type = ConsoleArgument.class)
+public class DaemonArgument extends AbstractConsoleArgument {
+
+	/** System property overriding the location of the token file. */
+	public static final String TOKEN_PROPERTY = "imagej.daemon.token";
+
+	@Parameter
+	private UIService uiService;
+
+	@Parameter
+	private LogService log;
+
+	public DaemonArgument() {
+		super(1, "--daemon");
+	}
+
+	// -- ConsoleArgument methods --
+
+	@Override
+	public void handle(final LinkedList<String> args) {
+		if (!supports(args)) return;
+
+		args.removeFirst(); // --daemon
+		final String portArg = getParam(args);
+		int port = DaemonServer.DEFAULT_PORT;
+		if (portArg != null) {
+			args.removeFirst(); // port
+			try {
+				port = Integer.parseInt(portArg);
+			}
+			catch (final NumberFormatException exc) {
+				port = -1;
+			}
+			if (port < 1 || port > 65535) {
+				log.error("Invalid daemon port: " + portArg);
+				return;
+			}
+		}
+
+		if (!uiService.isHeadless()) {
+			log.error("The daemon requires headless mode; " +
+				"pass --headless before --daemon");
+			return;
+		}
+
+		try (final DaemonServer server = new DaemonServer(getContext(), port,
+			tokenFile(port)))
+		{
+			log.info("ImageJ daemon listening on port " + server.getPort() +
+				"; token in " + server.getTokenFile());
+			server.serve();
+		}
+		catch (final IOException exc) {
+			log.error(exc);
+		}
+	}
+
+	// -- Helper methods --
+
+	private File tokenFile(final int port) {
+		final String path = System.getProperty(TOKEN_PROPERTY);
+		if (path != null) return new File(path);
+		final File dir = new File(System.getProperty("user.home"), ".imagej");
+		return new File(dir, "daemon-" + port + ".token");
+	}
+
+}
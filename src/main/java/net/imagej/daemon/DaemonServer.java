@@ -0,0 +1,564 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2015 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.daemon;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+import javax.script.ScriptEngine;
+
+import org.scijava.Context;
+import org.scijava.convert.ConvertService;
+import org.scijava.log.LogService;
+import org.scijava.module.ModuleItem;
+import org.scijava.module.ModuleService;
+import org.scijava.module.process.PostprocessorPlugin;
+import org.scijava.module.process.PreprocessorPlugin;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.PluginService;
+import org.scijava.script.ScriptInfo;
+import org.scijava.script.ScriptModule;
+import org.scijava.thread.ThreadService;
+
+/**
+ * Serves script jobs from thin clients against a long-lived, already
+ * initialized {@link Context}, avoiding the cost of a cold JVM and context per
+ * invocation.
+ * <p>
+ * The server listens on the loopback interface only. Since any local user can
+ * connect to a loopback port, every request must start with a secret token,
+ * which is generated at startup and written to a token file readable only by
+ * its owner. The token line is followed by a command:
+ * </p>
+ * <ul>
+ * <li>{@code run <name>} &ndash; the remainder of the stream (until the client
+ * shuts down its output) is the script to execute; the extension of
+ * {@code <name>} selects the script language.</li>
+ * <li>{@code quit} &ndash; stops accepting requests; {@link #serve()} returns
+ * once all running jobs have finished.</li>
+ * </ul>
+ * <p>
+ * The reply starts with a status line, {@code OK <millis>} or
+ * {@code ERROR <millis>}, where {@code <millis>} is the time the server spent
+ * on the job. It is followed by anything the script wrote to its output and
+ * error streams (or the error details), followed by one {@code name = value}
+ * line per script output.
+ * </p>
+ * <p>
+ * Every job runs in a fresh {@link ScriptModule} with its own script engine and
+ * bindings, and gets its own temporary directory, which is passed to the
+ * {@value #WORKSPACE} input if the script declares one and deleted afterwards.
+ * Services are shared across jobs, since sharing them is the whole point.
+ * </p>
+ * <p>
+ * Since anyone on the machine can connect before authenticating, the token
+ * and command are read as short, bounded lines which must arrive within the
+ * read timeout as a whole, and connections beyond a fixed limit are turned
+ * away at once.
+ * </p>
+ */
+public class DaemonServer implements Closeable {
+
+	/** Port used when none is given explicitly. */
+	public static final int DEFAULT_PORT = 8808;
+
+	/** Name of the script input which receives the job's working directory. */
+	public static final String WORKSPACE = "workspace";
+
+	/** Default time a client may take to send its token and command. */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/** Default limit on simultaneous connections, including running jobs. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 16;
+
+	/** Length of the access token, in hexadecimal characters. */
+	public static final int TOKEN_LENGTH = 64;
+
+	/** Maximum length of a command line, in bytes. */
+	private static final int MAX_COMMAND_LENGTH = 1024;
+
+	private final Context context;
+	private final ServerSocket serverSocket;
+	private final Path tokenFile;
+	private final byte[] token;
+	private final List<Future<?>> jobs = new ArrayList<>();
+
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	@Parameter
+	private ModuleService moduleService;
+
+	@Parameter
+	private PluginService pluginService;
+
+	@Parameter
+	private ConvertService convertService;
+
+	@Parameter
+	private ThreadService threadService;
+
+	@Parameter
+	private LogService log;
+
+	/**
+	 * Creates a server bound to the given loopback port, and writes its access
+	 * token to the given file. Use port 0 to pick any free port; see
+	 * {@link #getPort()}.
+	 */
+	public DaemonServer(final Context context, final int port,
+		final File tokenFile) throws IOException
+	{
+		this.context = context;
+		context.inject(this);
+		this.tokenFile = tokenFile.toPath();
+		token = generateToken();
+		serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		try {
+			writeToken();
+		}
+		catch (final IOException exc) {
+			serverSocket.close();
+			throw exc;
+		}
+	}
+
+	// -- DaemonServer methods --
+
+	/** Gets the port on which this server is listening. */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/** Gets the file containing the token which clients must send. */
+	public File getTokenFile() {
+		return tokenFile.toFile();
+	}
+
+	/**
+	 * Sets how long, in milliseconds, a client may take to send its token and
+	 * command, and how long any later read of its script may block. Applies to
+	 * connections accepted afterwards.
+	 */
+	public void setReadTimeout(final int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Sets how many connections may be open at once; further connections are
+	 * rejected until one finishes. Takes effect when {@link #serve()} is called.
+	 */
+	public void setMaxConnections(final int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Accepts and dispatches requests until the server is {@link #close()}d,
+	 * either directly or by a {@code quit} request, then waits for running jobs
+	 * to finish. Blocks the calling thread.
+	 */
+	public void serve() {
+		final Semaphore connections = new Semaphore(maxConnections);
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			}
+			catch (final IOException exc) {
+				if (serverSocket.isClosed()) break;
+				log.error(exc);
+				continue;
+			}
+			if (!connections.tryAcquire()) {
+				reject(socket);
+				continue;
+			}
+			jobs.removeIf(Future::isDone);
+			jobs.add(threadService.run(() -> {
+				try {
+					handle(socket);
+				}
+				finally {
+					connections.release();
+				}
+			}));
+		}
+		for (final Future<?> job : jobs) {
+			try {
+				job.get();
+			}
+			catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (final ExecutionException exc) {
+				log.error(exc);
+			}
+		}
+		jobs.clear();
+	}
+
+	// -- Closeable methods --
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		Files.deleteIfExists(tokenFile);
+	}
+
+	// -- Helper methods --
+
+	private void reject(final Socket socket) {
+		log.warn("Rejected daemon connection: too many connections");
+		try (final Socket s = socket) {
+			s.getOutputStream().write("ERROR 0\nToo many connections\n".getBytes(
+				StandardCharsets.UTF_8));
+		}
+		catch (final IOException exc) {
+			log.debug(exc);
+		}
+	}
+
+	private void handle(final Socket socket) {
+		try (final Socket s = socket) {
+			final InputStream is = s.getInputStream();
+			final Writer out = new BufferedWriter(new OutputStreamWriter(s
+				.getOutputStream(), StandardCharsets.UTF_8));
+			try {
+				final long deadline = System.nanoTime() + readTimeout * 1000000L;
+				// NB: Allow for a trailing carriage return after the token.
+				if (!isAuthorized(readLine(s, is, TOKEN_LENGTH + 1, deadline))) {
+					log.warn("Rejected daemon request with invalid token");
+					out.write("ERROR 0\nInvalid token\n");
+				}
+				else {
+					final String command = readLine(s, is, MAX_COMMAND_LENGTH,
+						deadline);
+					s.setSoTimeout(readTimeout);
+					// NB: The header was read unbuffered, so no script bytes are lost.
+					final BufferedReader in = new BufferedReader(new InputStreamReader(is,
+						StandardCharsets.UTF_8));
+					dispatch(command, in, out);
+				}
+			}
+			catch (final SocketTimeoutException exc) {
+				out.write("ERROR 0\nTimed out waiting for request\n");
+			}
+			out.flush();
+		}
+		catch (final IOException exc) {
+			log.error(exc);
+		}
+	}
+
+	private void dispatch(final String command, final BufferedReader in,
+		final Writer out) throws IOException
+	{
+		if (command == null) {
+			out.write("ERROR 0\nNo command given\n");
+		}
+		else if (command.equals("quit")) {
+			out.write("OK 0\n");
+			close();
+		}
+		else if (command.startsWith("run ")) {
+			runScript(command.substring(4).trim(), in, out);
+		}
+		else {
+			out.write("ERROR 0\nUnknown command: " + command + "\n");
+		}
+	}
+
+	private void runScript(final String path, final BufferedReader in,
+		final Writer out) throws IOException
+	{
+		final long start = System.nanoTime();
+		final StringWriter output = new StringWriter();
+		final Path workspace = Files.createTempDirectory("imagej-job-");
+		JobModule module = null;
+		boolean success = false;
+		try {
+			module = new JobModule(new ScriptInfo(context, path, in));
+			module.setContext(context);
+			module.setOutputWriter(output);
+			module.setErrorWriter(output);
+			final ModuleItem<?> item = module.getInfo().getInput(WORKSPACE);
+			if (item != null) {
+				final Object value = convertService.convert(workspace.toFile(), item
+					.getGenericType());
+				if (value == null) {
+					throw new IllegalArgumentException("Cannot pass workspace as " + item
+						.getGenericType().getTypeName());
+				}
+				module.setInput(WORKSPACE, value);
+				module.resolveInput(WORKSPACE);
+			}
+			final List<PreprocessorPlugin> pre = pluginService
+				.createInstancesOfType(PreprocessorPlugin.class);
+			final List<PostprocessorPlugin> post = pluginService
+				.createInstancesOfType(PostprocessorPlugin.class);
+			moduleService.run(module, pre, post).get();
+			final String cancelReason = cancelReason(pre);
+			if (cancelReason != null) {
+				output.write("Canceled: " + cancelReason + "\n");
+			}
+			else if (module.failure == null) success = true;
+			// NB: ScriptModule has already written the failure to the output.
+		}
+		catch (final ExecutionException exc) {
+			printStackTrace(exc.getCause() == null ? exc : exc.getCause(), output);
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			output.write("Interrupted\n");
+		}
+		catch (final RuntimeException exc) {
+			printStackTrace(exc, output);
+		}
+		finally {
+			delete(workspace);
+		}
+		final long millis = (System.nanoTime() - start) / 1000000;
+		out.write((success ? "OK " : "ERROR ") + millis + "\n");
+		out.write(output.toString());
+		if (!success) return;
+		for (final Map.Entry<String, Object> entry : module.getOutputs()
+			.entrySet())
+		{
+			if (entry.getValue() == null) continue;
+			out.write(entry.getKey() + " = " + entry.getValue() + "\n");
+		}
+	}
+
+	/**
+	 * Reads a line of at most {@code max} bytes, which must be complete by the
+	 * given {@link System#nanoTime()} deadline. Returns null if the line is too
+	 * long or the stream ends first.
+	 */
+	private static String readLine(final Socket socket, final InputStream in,
+		final int max, final long deadline) throws IOException
+	{
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while (true) {
+			final long remaining = (deadline - System.nanoTime()) / 1000000;
+			if (remaining <= 0) throw new SocketTimeoutException();
+			socket.setSoTimeout((int) remaining);
+			final int b = in.read();
+			if (b < 0) return null;
+			if (b == '\n') return new String(line.toByteArray(),
+				StandardCharsets.UTF_8);
+			if (line.size() == max) return null;
+			line.write(b);
+		}
+	}
+
+	private boolean isAuthorized(final String line) {
+		if (line == null) return false;
+		return MessageDigest.isEqual(token, line.trim().getBytes(
+			StandardCharsets.UTF_8));
+	}
+
+	private void writeToken() throws IOException {
+		Files.deleteIfExists(tokenFile);
+		final Path dir = tokenFile.toAbsolutePath().getParent();
+		if (dir != null) Files.createDirectories(dir);
+		if (tokenFile.getFileSystem().supportedFileAttributeViews().contains(
+			"posix"))
+		{
+			// NB: Create the file owner-only, so the token is never exposed.
+			Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rw-------")));
+		}
+		else {
+			Files.createFile(tokenFile);
+			restrictToOwner();
+		}
+		final byte[] line = new byte[token.length + 1];
+		System.arraycopy(token, 0, line, 0, token.length);
+		line[token.length] = '\n';
+		Files.write(tokenFile, line);
+	}
+
+	/**
+	 * Restricts the (still empty) token file to its owner on file systems
+	 * without POSIX permissions, such as NTFS.
+	 */
+	private void restrictToOwner() throws IOException {
+		final AclFileAttributeView acl = Files.getFileAttributeView(tokenFile,
+			AclFileAttributeView.class);
+		if (acl != null) {
+			// NB: Replace the inherited entries with a single one for the owner.
+			final AclEntry entry = AclEntry.newBuilder() //
+				.setType(AclEntryType.ALLOW) //
+				.setPrincipal(acl.getOwner()) //
+				.setPermissions(EnumSet.allOf(AclEntryPermission.class)) //
+				.build();
+			acl.setAcl(Collections.singletonList(entry));
+			return;
+		}
+		final File file = tokenFile.toFile();
+		final boolean restricted = file.setReadable(false, false) && //
+			file.setWritable(false, false) && //
+			file.setReadable(true, true) && //
+			file.setWritable(true, true);
+		if (!restricted) {
+			log.warn("Cannot restrict access to token file " + tokenFile +
+				"; other users may be able to read it");
+		}
+	}
+
+	private void delete(final Path dir) {
+		try (final Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(
+				File::delete);
+		}
+		catch (final IOException exc) {
+			log.warn("Cannot delete job workspace: " + dir, exc);
+		}
+	}
+
+	private static byte[] generateToken() {
+		final byte[] bytes = new byte[TOKEN_LENGTH / 2];
+		new SecureRandom().nextBytes(bytes);
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String cancelReason(
+		final List<? extends PreprocessorPlugin> pre)
+	{
+		for (final PreprocessorPlugin p : pre) {
+			if (!p.isCanceled()) continue;
+			final String reason = p.getCancelReason();
+			return reason == null ? p.getClass().getName() : reason;
+		}
+		return null;
+	}
+
+	private static void printStackTrace(final Throwable t, final Writer w) {
+		final PrintWriter pw = new PrintWriter(w);
+		t.printStackTrace(pw);
+		pw.flush();
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * A {@link ScriptModule} which remembers whether its script failed, since
+	 * {@link ScriptModule#run()} reports script exceptions only to the error
+	 * writer.
+	 */
+	static class JobModule extends ScriptModule {
+
+		private ScriptEngine engine;
+		private Throwable failure;
+
+		public JobModule(final ScriptInfo info) {
+			super(info);
+		}
+
+		@Override
+		public ScriptEngine getEngine() {
+			if (engine == null) {
+				final ScriptEngine delegate = super.getEngine();
+				// NB: Keep all public interfaces, e.g. Invocable and Compilable, so
+				// code casting the module's engine behaves as it does without us.
+				engine = (ScriptEngine) Proxy.newProxyInstance(delegate.getClass()
+					.getClassLoader(), publicInterfaces(delegate.getClass()), (proxy,
+						method, args) -> {
+						try {
+							return method.invoke(delegate, args);
+						}
+						catch (final InvocationTargetException exc) {
+							if (method.getName().equals("eval")) failure = exc.getCause();
+							throw exc.getCause();
+						}
+					});
+			}
+			return engine;
+		}
+
+		private static Class<?>[] publicInterfaces(final Class<?> c) {
+			final Set<Class<?>> interfaces = new LinkedHashSet<>();
+			for (Class<?> type = c; type != null; type = type.getSuperclass()) {
+				for (final Class<?> iface : type.getInterfaces()) {
+					if (Modifier.isPublic(iface.getModifiers())) interfaces.add(iface);
+				}
+			}
+			interfaces.add(ScriptEngine.class);
+			return interfaces.toArray(new Class<?>[interfaces.size()]);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2015 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.ui.UIService;
+
+/**
+ * Tests {@link DaemonArgument}.
+ */
+public class DaemonArgumentTest {
+
+	private Context context;
+	private UIService ui;
+	private boolean headless;
+
+	@Before
+	public void setUp() {
+		context = new Context();
+		ui = context.service(UIService.class);
+		headless = ui.isHeadless();
+		ui.setHeadless(true);
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+		// NB: The flag is a system property; do not leak it to other tests.
+		ui.setHeadless(headless);
+	}
+
+	/** Tests that the daemon refuses to start unless headless. */
+	@Test
+	public void testRequiresHeadless() {
+		final DaemonArgument arg = new DaemonArgument();
+		arg.setContext(context);
+		final LinkedList<String> args = new LinkedList<>(Arrays.asList(
+			"--daemon", "" + DaemonServer.DEFAULT_PORT, "--foo"));
+		assertTrue(arg.supports(args));
+		ui.setHeadless(false);
+		try {
+			arg.handle(args); // NB: Would block forever if the daemon started.
+		}
+		finally {
+			ui.setHeadless(true);
+		}
+		assertEquals(Arrays.asList("--foo"), args);
+	}
+
+	/** Tests that port 0 is refused, since clients could not find its token. */
+	@Test
+	public void testRejectsPortZero() {
+		final DaemonArgument arg = new DaemonArgument();
+		arg.setContext(context);
+		final LinkedList<String> args = new LinkedList<>(Arrays.asList(
+			"--daemon", "0", "--foo"));
+		arg.handle(args); // NB: Would block forever if the daemon started.
+		assertEquals(Arrays.asList("--foo"), args);
+	}
+
+}
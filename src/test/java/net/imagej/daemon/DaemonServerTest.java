@@ -0,0 +1,508 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2015 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.Context;
+import org.scijava.plugin.Plugin;
+import org.scijava.script.AbstractScriptLanguage;
+import org.scijava.script.ScriptInfo;
+import org.scijava.script.ScriptLanguage;
+import org.scijava.ui.UIService;
+
+/**
+ * Tests {@link DaemonServer}.
+ */
+public class DaemonServerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Context context;
+	private DaemonServer server;
+	private Thread serverThread;
+	private String token;
+	private boolean headless;
+
+	@Before
+	public void setUp() throws IOException {
+		context = new Context();
+		final UIService ui = context.service(UIService.class);
+		headless = ui.isHeadless();
+		ui.setHeadless(true);
+		startServer(DaemonServer.DEFAULT_READ_TIMEOUT,
+			DaemonServer.DEFAULT_MAX_CONNECTIONS);
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		server.close();
+		serverThread.join();
+		final UIService ui = context.service(UIService.class);
+		context.dispose();
+		ui.setHeadless(headless);
+	}
+
+	/** Tests that consecutive jobs run against the same warm context. */
+	@Test
+	public void testRun() throws IOException {
+		for (int i = 0; i < 3; i++) {
+			final List<String> reply = request(token, "run job.echo", "kung fu " + i);
+			assertTrue(reply.get(0), reply.get(0).startsWith("OK "));
+			assertTrue(reply.toString(), reply.contains("kung fu " + i));
+		}
+	}
+
+	@Test
+	public void testTokenFile() throws IOException {
+		assertEquals(64, token.length());
+		final File file = server.getTokenFile();
+		if (file.toPath().getFileSystem().supportedFileAttributeViews().contains(
+			"posix"))
+		{
+			assertEquals("rw-------", PosixFilePermissions.toString(Files
+				.getPosixFilePermissions(file.toPath())));
+		}
+		server.close();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testInvalidToken() throws IOException {
+		final List<String> reply = request("letmein", "run job.echo", "kung fu");
+		assertEquals(Arrays.asList("ERROR 0", "Invalid token"), reply);
+	}
+
+	@Test
+	public void testUnknownCommand() throws IOException {
+		final List<String> reply = request(token, "frobnicate");
+		assertEquals("ERROR 0", reply.get(0));
+	}
+
+	@Test
+	public void testFailingScript() throws IOException {
+		final List<String> reply = request(token, "run job.fail", "kung fu");
+		assertTrue(reply.get(0), reply.get(0).startsWith("ERROR "));
+		assertTrue(reply.toString(), reply.toString().contains("Failed: kung fu"));
+	}
+
+	/** Tests that a job canceled by a preprocessor is not reported as OK. */
+	@Test
+	public void testUnresolvedInput() throws IOException {
+		final List<String> reply = request(token, "run job.echo",
+			"#@ String name", "kung fu");
+		assertTrue(reply.get(0), reply.get(0).startsWith("ERROR "));
+		assertTrue(reply.toString(), reply.get(1).startsWith("Canceled: "));
+	}
+
+	@Test
+	public void testWorkspace() throws IOException {
+		final List<String> reply = request(token, "run job.echo",
+			"#@ File workspace", "kung fu");
+		assertTrue(reply.get(0), reply.get(0).startsWith("OK "));
+		final File workspace = new File(workspaceLine(reply, File.class));
+		assertTrue(workspace.getName().startsWith("imagej-job-"));
+		assertFalse(workspace.exists());
+	}
+
+	@Test
+	public void testStringWorkspace() throws IOException {
+		final List<String> reply = request(token, "run job.echo",
+			"#@ String workspace", "kung fu");
+		assertTrue(reply.get(0), reply.get(0).startsWith("OK "));
+		assertFalse(new File(workspaceLine(reply, String.class)).exists());
+	}
+
+	@Test
+	public void testReadTimeout() throws IOException, InterruptedException {
+		restartServer(200, DaemonServer.DEFAULT_MAX_CONNECTIONS);
+		try (final Socket socket = connect()) {
+			// NB: Send nothing, but keep our side of the connection open.
+			assertEquals(Arrays.asList("ERROR 0", "Timed out waiting for request"),
+				readReply(socket));
+		}
+	}
+
+	/** Tests that the timeout covers the whole header, not each single read. */
+	@Test
+	public void testSlowHeader() throws IOException, InterruptedException {
+		restartServer(300, DaemonServer.DEFAULT_MAX_CONNECTIONS);
+		final long start = System.currentTimeMillis();
+		try (final Socket socket = connect()) {
+			final OutputStream out = socket.getOutputStream();
+			for (int i = 0; i < 50; i++) {
+				if (socket.getInputStream().available() > 0) break; // replied
+				out.write(token.charAt(i));
+				out.flush();
+				Thread.sleep(100);
+			}
+			assertEquals(Arrays.asList("ERROR 0", "Timed out waiting for request"),
+				readReply(socket));
+		}
+		assertTrue(System.currentTimeMillis() - start < 3000);
+	}
+
+	/** Tests that an overlong token is rejected without reading all of it. */
+	@Test
+	public void testOversizedToken() throws IOException {
+		try (final Socket socket = connect()) {
+			// NB: Send exactly what the server reads before giving up, so it
+			// closes the connection cleanly; a real client may send much more.
+			final char[] junk = new char[DaemonServer.TOKEN_LENGTH + 2];
+			Arrays.fill(junk, 'a');
+			socket.getOutputStream().write(new String(junk).getBytes(
+				StandardCharsets.UTF_8));
+			assertEquals(Arrays.asList("ERROR 0", "Invalid token"), readReply(
+				socket));
+		}
+	}
+
+	@Test
+	public void testMaxConnections() throws IOException, InterruptedException {
+		restartServer(DaemonServer.DEFAULT_READ_TIMEOUT, 1);
+		final Socket idle = connect();
+		final List<String> reply = request(token, "run job.echo", "kung fu");
+		assertEquals(Arrays.asList("ERROR 0", "Too many connections"), reply);
+
+		// NB: Once the idle connection is gone, its slot becomes free again.
+		idle.close();
+		for (int i = 0; i < 100; i++) {
+			if (request(token, "run job.echo", "kung fu").get(0).startsWith("OK ")) {
+				return;
+			}
+			Thread.sleep(50);
+		}
+		throw new AssertionError("Connection slot was never released");
+	}
+
+	/** Tests that the engine keeps the interfaces of the language's engine. */
+	@Test
+	public void testEngineInterfaces() {
+		final DaemonServer.JobModule module = new DaemonServer.JobModule(
+			new ScriptInfo(context, "job.echo", new StringReader("kung fu")));
+		module.setContext(context);
+		assertTrue(module.getEngine() instanceof Invocable);
+	}
+
+	/** Tests that quitting waits for running jobs before returning. */
+	@Test
+	public void testQuit() throws Exception {
+		final FutureTask<List<String>> slowJob = new FutureTask<>(() -> request(
+			token, "run job.slow", "kung fu"));
+		new Thread(slowJob).start();
+		assertTrue(SlowLanguage.started.await(10, TimeUnit.SECONDS));
+
+		assertEquals("OK 0", request(token, "quit").get(0));
+		serverThread.join(200);
+		assertTrue(serverThread.isAlive());
+		assertTrue(server.getTokenFile().getName(), !server.getTokenFile()
+			.exists());
+
+		SlowLanguage.finish.countDown();
+		final List<String> reply = get(slowJob);
+		assertTrue(reply.get(0), reply.get(0).startsWith("OK "));
+		serverThread.join(10000);
+		assertFalse(serverThread.isAlive());
+	}
+
+	// -- Helper methods --
+
+	private void startServer(final int readTimeout, final int maxConnections)
+		throws IOException
+	{
+		server = new DaemonServer(context, 0, new File(folder.getRoot(),
+			"daemon.token"));
+		server.setReadTimeout(readTimeout);
+		server.setMaxConnections(maxConnections);
+		token = new String(Files.readAllBytes(server.getTokenFile().toPath()),
+			StandardCharsets.UTF_8).trim();
+		serverThread = new Thread(server::serve, "DaemonServerTest");
+		serverThread.start();
+	}
+
+	private void restartServer(final int readTimeout, final int maxConnections)
+		throws IOException, InterruptedException
+	{
+		server.close();
+		serverThread.join();
+		startServer(readTimeout, maxConnections);
+	}
+
+	private Socket connect() throws IOException {
+		return new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+	}
+
+	private List<String> request(final String... lines) throws IOException {
+		try (final Socket socket = connect()) {
+			final Writer out = new OutputStreamWriter(socket.getOutputStream(),
+				StandardCharsets.UTF_8);
+			for (final String line : lines) {
+				out.write(line + "\n");
+			}
+			out.flush();
+			socket.shutdownOutput();
+			return readReply(socket);
+		}
+	}
+
+	private List<String> readReply(final Socket socket) throws IOException {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(socket
+			.getInputStream(), StandardCharsets.UTF_8));
+		final List<String> reply = new ArrayList<>();
+		while (true) {
+			final String line = in.readLine();
+			if (line == null) break;
+			reply.add(line);
+		}
+		return reply;
+	}
+
+	/**
+	 * Finds the line written by {@link EchoEngine} for the workspace input,
+	 * checks its type, and that it existed while the job ran.
+	 */
+	private String workspaceLine(final List<String> reply, final Class<?> type) {
+		for (final String line : reply) {
+			if (!line.startsWith("workspace: ")) continue;
+			final String[] tokens = line.split(" ", 4);
+			assertEquals(type.getName(), tokens[1]);
+			assertEquals("true", tokens[2]);
+			return tokens[3];
+		}
+		throw new AssertionError("No workspace in " + reply);
+	}
+
+	private static <T> T get(final Future<T> future) throws Exception {
+		try {
+			return future.get(10, TimeUnit.SECONDS);
+		}
+		catch (final ExecutionException exc) {
+			throw (Exception) exc.getCause();
+		}
+	}
+
+	// -- Helper classes --
+
+	/** A script language which writes its script back to the output stream. */
+	@Plugin(type = ScriptLanguage.class)
+	public static class EchoLanguage extends AbstractScriptLanguage {
+
+		@Override
+		public List<String> getExtensions() {
+			return Arrays.asList(getLanguageName().toLowerCase());
+		}
+
+		@Override
+		public String getLanguageName() {
+			return "Echo";
+		}
+
+		@Override
+		public ScriptEngine getScriptEngine() {
+			return new EchoEngine(this);
+		}
+
+		/** Called by the engine before echoing the script. */
+		protected void beforeEcho(final String script) throws ScriptException {
+			// NB: No action needed.
+		}
+	}
+
+	/** A script language whose scripts always fail. */
+	@Plugin(type = ScriptLanguage.class)
+	public static class FailLanguage extends EchoLanguage {
+
+		@Override
+		public String getLanguageName() {
+			return "Fail";
+		}
+
+		@Override
+		protected void beforeEcho(final String script) throws ScriptException {
+			throw new ScriptException("Failed: " + script.trim());
+		}
+	}
+
+	/** A script language whose scripts block until the test releases them. */
+	@Plugin(type = ScriptLanguage.class)
+	public static class SlowLanguage extends EchoLanguage {
+
+		private static final CountDownLatch started = new CountDownLatch(1);
+		private static final CountDownLatch finish = new CountDownLatch(1);
+
+		@Override
+		public String getLanguageName() {
+			return "Slow";
+		}
+
+		@Override
+		protected void beforeEcho(final String script) throws ScriptException {
+			started.countDown();
+			try {
+				finish.await(10, TimeUnit.SECONDS);
+			}
+			catch (final InterruptedException exc) {
+				throw new ScriptException(exc);
+			}
+		}
+	}
+
+	/**
+	 * Echoes its script, and reports the type of its {@code workspace} binding,
+	 * whether that directory exists, and its path.
+	 */
+	private static class EchoEngine extends AbstractScriptEngine implements
+		Invocable
+	{
+
+		private final EchoLanguage language;
+
+		public EchoEngine(final EchoLanguage language) {
+			this.language = language;
+		}
+
+		@Override
+		public Object eval(final String script, final ScriptContext context)
+			throws ScriptException
+		{
+			language.beforeEcho(script);
+			try {
+				final Writer out = context.getWriter();
+				out.write(script);
+				final Object workspace = context.getAttribute(DaemonServer.WORKSPACE);
+				if (workspace != null) {
+					final File dir = new File(workspace.toString());
+					out.write("\nworkspace: " + workspace.getClass().getName() + " " +
+						dir.isDirectory() + " " + workspace + "\n");
+				}
+				out.flush();
+			}
+			catch (final IOException exc) {
+				throw new ScriptException(exc);
+			}
+			return null;
+		}
+
+		@Override
+		public Object eval(final Reader reader, final ScriptContext context)
+			throws ScriptException
+		{
+			final StringBuilder sb = new StringBuilder();
+			final char[] buf = new char[8192];
+			try {
+				while (true) {
+					final int r = reader.read(buf);
+					if (r < 0) break;
+					sb.append(buf, 0, r);
+				}
+			}
+			catch (final IOException exc) {
+				throw new ScriptException(exc);
+			}
+			return eval(sb.toString(), context);
+		}
+
+		@Override
+		public Object invokeMethod(final Object thiz, final String name,
+			final Object... args) throws NoSuchMethodException
+		{
+			throw new NoSuchMethodException(name);
+		}
+
+		@Override
+		public Object invokeFunction(final String name, final Object... args)
+			throws NoSuchMethodException
+		{
+			throw new NoSuchMethodException(name);
+		}
+
+		@Override
+		public <T> T getInterface(final Class<T> clasz) {
+			return null;
+		}
+
+		@Override
+		public <T> T getInterface(final Object thiz, final Class<T> clasz) {
+			return null;
+		}
+
+		@Override
+		public Bindings createBindings() {
+			return new SimpleBindings();
+		}
+
+		@Override
+		public EchoLanguage getFactory() {
+			return language;
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * #%L
+ * ImageJ software for multidimensional image processing and analysis.
+ * %%
+ * Copyright (C) 2009 - 2015 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package net.imagej.debug;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.imagej.Main;
+import net.imagej.daemon.DaemonArgument;
+
+/**
+ * Compares the end-to-end latency of running a trivial headless script in a
+ * cold JVM ({@code --headless --run}) against submitting it to a warm
+ * {@code --daemon}, as seen by the client.
+ * <p>
+ * Usage: {@code DaemonLatency <script> [runs] [main-class]}. Both the cold
+ * runs and the daemon are launched as {@code java -cp <classpath> <main-class>}
+ * with the classpath of this JVM; the main class defaults to {@link Main}.
+ * </p>
+ */
+public class DaemonLatency {
+
+	private final File script;
+	private final String mainClass;
+	private final File log;
+
+	public DaemonLatency(final File script, final String mainClass)
+		throws IOException
+	{
+		this.script = script;
+		this.mainClass = mainClass;
+		log = File.createTempFile("daemon-latency-", ".log");
+	}
+
+	/** Times the given number of cold JVM runs of the script, in ms. */
+	public long[] timeColdRuns(final int runs) throws IOException,
+		InterruptedException
+	{
+		final long[] times = new long[runs];
+		for (int i = 0; i < runs; i++) {
+			final long start = System.nanoTime();
+			final int exitCode = launch(Collections.<String> emptyList(),
+				"--headless", "--run", script.getPath()).waitFor();
+			times[i] = millisSince(start);
+			if (exitCode != 0) throw new IOException("Cold run failed; see " + log);
+		}
+		return times;
+	}
+
+	/**
+	 * Starts a daemon, then times one startup (until the daemon accepts
+	 * requests), one first request, and the given number of further requests,
+	 * in ms.
+	 */
+	public long[] timeDaemonRuns(final int runs) throws IOException,
+		InterruptedException
+	{
+		final int port = freePort();
+		final File tokenFile = new File(log.getPath() + ".token");
+		final long[] times = new long[runs + 2];
+
+		final long start = System.nanoTime();
+		final Process daemon = launch(Arrays.asList("-D" +
+			DaemonArgument.TOKEN_PROPERTY + "=" + tokenFile), "--headless",
+			"--daemon", "" + port);
+		final String token = awaitToken(tokenFile, daemon);
+		times[0] = millisSince(start);
+		try {
+			final byte[] code = Files.readAllBytes(script.toPath());
+			for (int i = 1; i < times.length; i++) {
+				final long t = System.nanoTime();
+				final String status = request(port, token, "run " + script.getName(),
+					code);
+				times[i] = millisSince(t);
+				if (!status.startsWith("OK ")) {
+					throw new IOException("Daemon run failed: " + status);
+				}
+			}
+		}
+		finally {
+			request(port, token, "quit", new byte[0]);
+			daemon.waitFor();
+		}
+		return times;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: DaemonLatency <script> [runs] [main-class]");
+			System.exit(1);
+		}
+		final File script = new File(args[0]);
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final String mainClass = args.length > 2 ? args[2] : Main.class.getName();
+
+		final DaemonLatency latency = new DaemonLatency(script, mainClass);
+		final long[] cold = latency.timeColdRuns(runs);
+		final long[] daemon = latency.timeDaemonRuns(runs);
+		final long[] warm = Arrays.copyOfRange(daemon, 2, daemon.length);
+
+		System.out.println("Script: " + script + " (" + runs + " runs each)");
+		System.out.println("Cold JVM:        " + summary(cold));
+		System.out.println("Daemon startup:  " + daemon[0] + " ms");
+		System.out.println("Daemon, first:   " + daemon[1] + " ms");
+		System.out.println("Daemon, warm:    " + summary(warm));
+		System.out.println("Process output:  " + latency.log);
+	}
+
+	// -- Helper methods --
+
+	private Process launch(final List<String> jvmArgs, final String... args)
+		throws IOException
+	{
+		final List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/java")
+			.getPath());
+		command.addAll(jvmArgs);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(mainClass);
+		command.addAll(Arrays.asList(args));
+		return new ProcessBuilder(command).redirectErrorStream(true)
+			.redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+	}
+
+	private String awaitToken(final File tokenFile, final Process daemon)
+		throws IOException, InterruptedException
+	{
+		while (true) {
+			if (tokenFile.length() > 0) {
+				final String token = new String(Files.readAllBytes(tokenFile
+					.toPath()), StandardCharsets.UTF_8);
+				if (token.endsWith("\n")) return token.trim();
+			}
+			if (!daemon.isAlive()) {
+				throw new IOException("Daemon did not start; see " + log);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static String request(final int port, final String token,
+		final String command, final byte[] code) throws IOException
+	{
+		try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+			port))
+		{
+			final OutputStream out = socket.getOutputStream();
+			out.write((token + "\n" + command + "\n").getBytes(
+				StandardCharsets.UTF_8));
+			out.write(code);
+			out.flush();
+			socket.shutdownOutput();
+			final BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), StandardCharsets.UTF_8));
+			final String status = in.readLine();
+			while (in.readLine() != null) {
+				// NB: Drain the reply, since the client waits for all of it.
+			}
+			return status == null ? "" : status;
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (final ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static long millisSince(final long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static String summary(final long[] times) {
+		final long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		long sum = 0;
+		for (final long t : sorted) {
+			sum += t;
+		}
+		return "mean " + sum / sorted.length + " ms, median " +
+			sorted[sorted.length / 2] + " ms, min " + sorted[0] + " ms";
+	}
+
+}